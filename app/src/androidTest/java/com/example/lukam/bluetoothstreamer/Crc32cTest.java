@@ -0,0 +1,42 @@
+package com.example.lukam.bluetoothstreamer;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Known answer and consistency tests for Crc32c
+ */
+public class Crc32cTest extends TestCase {
+
+    public void testKnownAnswer() {
+        byte[] data = "123456789".getBytes();
+        assertEquals(0xE3069283, Crc32c.compute(data, 0, data.length));
+    }
+
+    public void testEmpty() {
+        assertEquals(0, Crc32c.compute(new byte[0], 0, 0));
+    }
+
+    public void testMatchesBitwiseReference() {
+        byte[] data = new byte[1000];
+        new Random(1).nextBytes(data);
+
+        // Every offset and length exercises both the eight byte and the single byte loop
+        for (int offset = 0; offset < 9; offset++) {
+            for (int length = 0; length < 40; length++)
+                assertEquals(reference(data, offset, length), Crc32c.compute(data, offset, length));
+        }
+        assertEquals(reference(data, 3, 990), Crc32c.compute(data, 3, 990));
+    }
+
+    private static int reference(byte[] data, int offset, int length) {
+        int crc = 0xFFFFFFFF;
+        for (int i = offset; i < offset + length; i++) {
+            crc ^= data[i] & 0xff;
+            for (int k = 0; k < 8; k++)
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0x82F63B78 : crc >>> 1;
+        }
+        return ~crc;
+    }
+}
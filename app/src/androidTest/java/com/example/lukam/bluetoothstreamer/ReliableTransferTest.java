@@ -0,0 +1,408 @@
+package com.example.lukam.bluetoothstreamer;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Tests two ReliableTransfer endpoints connected in memory
+ */
+public class ReliableTransferTest extends TestCase {
+
+    // Time allowed for a transfer to complete, in ms
+    private static final long DELIVERY_TIMEOUT = 15000;
+
+    private static final byte TYPE_DATA = 1;
+    private static final byte TYPE_ACK = 2;
+    private static final byte TYPE_NAK = 3;
+
+    private Endpoint mA;
+    private Endpoint mB;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mA = new Endpoint();
+        mB = new Endpoint();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mA.disconnect();
+        mB.disconnect();
+        super.tearDown();
+    }
+
+    public void testCleanTransfer() throws Exception {
+        connect(new Lossy(0, 0, 0), new Lossy(0, 0, 0));
+        byte[] data = randomData(100 * 1024, 1);
+
+        mA.sendAll(data, 0, data.length);
+
+        mB.awaitReceived(data.length);
+        assertTrue(Arrays.equals(data, mB.received()));
+    }
+
+    public void testLossAndCorruption() throws Exception {
+        // 5 % of all frames lost and 5 % corrupted, in both directions
+        connect(new Lossy(2, 5, 5), new Lossy(3, 5, 5));
+        byte[] data = randomData(200 * 1024, 4);
+
+        for (int offset = 0; offset < data.length; offset += 1000)
+            mA.sendAll(data, offset, Math.min(1000, data.length - offset));
+
+        mB.awaitReceived(data.length);
+        assertTrue(Arrays.equals(data, mB.received()));
+    }
+
+    public void testLostTailChunk() throws Exception {
+        // Drop the last of five chunks, only the retransmit timer can recover it
+        Lossy drop = new Lossy(0, 0, 0);
+        drop.dropDataFrame = 5;
+        connect(drop, new Lossy(0, 0, 0));
+        byte[] data = randomData(5 * 1024, 5);
+
+        mA.sendAll(data, 0, data.length);
+
+        mB.awaitReceived(data.length);
+        assertTrue(Arrays.equals(data, mB.received()));
+    }
+
+    public void testReconnect() throws Exception {
+        connect(new Lossy(6, 2, 2), new Lossy(7, 2, 2));
+        byte[] data = randomData(100 * 1024, 8);
+        int half = data.length / 2;
+
+        mA.sendAll(data, 0, half);
+
+        // Connection lost while chunks are still in flight
+        mA.disconnect();
+        mB.disconnect();
+        connect(new Lossy(9, 2, 2), new Lossy(10, 2, 2));
+
+        mA.sendAll(data, half, data.length - half);
+
+        mB.awaitReceived(data.length);
+        assertTrue(Arrays.equals(data, mB.received()));
+    }
+
+    public void testReconnectResendsOnlyMissingChunks() throws Exception {
+        Lossy toB = new Lossy(0, 0, 0);
+        Lossy toA = new Lossy(0, 0, 0);
+        connect(toB, toA);
+        byte[] warmUp = randomData(1024, 20);
+        mA.sendAll(warmUp, 0, warmUp.length);
+        mA.awaitAcknowledged();
+
+        // Lose the 5th chunk and every answer, so the sender has no idea what arrived
+        toB.dropDataFrame = 6;
+        toA.dropControl = true;
+        byte[] data = randomData(20 * 1024, 21);
+        mA.sendAll(data, 0, data.length);
+        mB.awaitReceived(warmUp.length + 4 * 1024);
+        Thread.sleep(200);
+
+        mA.disconnect();
+        mB.disconnect();
+        Lossy counter = new Lossy(0, 0, 0);
+        connect(counter, new Lossy(0, 0, 0));
+
+        mB.awaitReceived(warmUp.length + data.length);
+        byte[] received = mB.received();
+        assertTrue(Arrays.equals(data, Arrays.copyOfRange(received, warmUp.length, received.length)));
+        assertEquals(1, counter.dataFrames());
+    }
+
+    public void testSenderReset() throws Exception {
+        connect(new Lossy(0, 0, 0), new Lossy(0, 0, 0));
+        byte[] first = randomData(20 * 1024, 11);
+        mA.sendAll(first, 0, first.length);
+        mB.awaitReceived(first.length);
+
+        // Sender restarts its sequence numbers, the receiver must follow
+        mA.transfer.reset();
+        byte[] second = randomData(40 * 1024, 12);
+        mA.sendAll(second, 0, second.length);
+
+        mB.awaitReceived(first.length + second.length);
+        byte[] received = mB.received();
+        assertTrue(Arrays.equals(second, Arrays.copyOfRange(received, first.length, received.length)));
+    }
+
+    public void testReceiverResetWithUnacknowledgedChunks() throws Exception {
+        Lossy toA = new Lossy(0, 0, 0);
+        connect(new Lossy(0, 0, 0), toA);
+        byte[] warmUp = randomData(1024, 22);
+        mA.sendAll(warmUp, 0, warmUp.length);
+        mA.awaitAcknowledged();
+
+        // Every chunk is delivered, but the sender never learns about it
+        toA.dropControl = true;
+        byte[] first = randomData(20 * 1024, 13);
+        mA.sendAll(first, 0, first.length);
+        mB.awaitReceived(warmUp.length + first.length);
+        assertFalse(mA.transfer.isAcknowledged());
+
+        // Receiver starts from scratch, the sender must drop its stale window
+        mB.transfer.reset();
+        toA.dropControl = false;
+        mA.awaitAcknowledged();
+
+        byte[] second = randomData(40 * 1024, 14);
+        mA.sendAll(second, 0, second.length);
+
+        // Nothing of the stale window may follow, even after the retransmit timeout
+        int length = warmUp.length + first.length + second.length;
+        mB.awaitReceived(length);
+        Thread.sleep(1500);
+        byte[] received = mB.received();
+        assertEquals(length, received.length);
+        assertTrue(Arrays.equals(second, Arrays.copyOfRange(received, length - second.length, length)));
+    }
+
+    public void testBidirectionalWithSmallSocketBuffers() throws Exception {
+        // Writes block as soon as four frames are queued, as on a full socket
+        mA.capacity = 4;
+        mB.capacity = 4;
+        connect(new Lossy(15, 1, 1), new Lossy(16, 1, 1));
+        final byte[] toB = randomData(200 * 1024, 17);
+        final byte[] toA = randomData(200 * 1024, 18);
+
+        Thread sender = new Thread() {
+            public void run() {
+                try {
+                    mB.sendAll(toA, 0, toA.length);
+                } catch (InterruptedException e) {
+                    // checked below
+                }
+            }
+        };
+        sender.start();
+        mA.sendAll(toB, 0, toB.length);
+        sender.join(DELIVERY_TIMEOUT);
+
+        mB.awaitReceived(toB.length);
+        mA.awaitReceived(toA.length);
+        assertTrue(Arrays.equals(toB, mB.received()));
+        assertTrue(Arrays.equals(toA, mA.received()));
+    }
+
+    public void testSendQueuesOnlyTheWindow() throws Exception {
+        byte[] data = randomData(64 * 1024, 19);
+
+        // Not connected - half of the data fits into the window, without blocking
+        int queued = mA.transfer.send(data, 0, data.length);
+        assertEquals(32 * 1024, queued);
+        assertEquals(0, mA.transfer.send(data, queued, data.length - queued));
+
+        // The rest is accepted once the peer acknowledges, without a gap
+        connect(new Lossy(0, 0, 0), new Lossy(0, 0, 0));
+        mA.sendAll(data, queued, data.length - queued);
+
+        mB.awaitReceived(data.length);
+        assertTrue(Arrays.equals(data, mB.received()));
+    }
+
+    private void connect(Lossy toB, Lossy toA) {
+        Link ab = new Link(mB, toB, mA.capacity);
+        Link ba = new Link(mA, toA, mB.capacity);
+        mA.attach(ab);
+        mB.attach(ba);
+    }
+
+    private static byte[] randomData(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Loss and corruption model applied to every written frame
+     */
+    private static class Lossy {
+        private final Random mmRandom;
+        private final int mmLossPercent;
+        private final int mmCorruptPercent;
+        private int mmDataFrames = 0;
+        volatile int dropDataFrame = 0;
+        volatile boolean dropControl = false;
+
+        Lossy(long seed, int lossPercent, int corruptPercent) {
+            mmRandom = new Random(seed);
+            mmLossPercent = lossPercent;
+            mmCorruptPercent = corruptPercent;
+        }
+
+        /**
+         * @return  Frame to deliver, or null if it is lost
+         */
+        synchronized byte[] apply(byte[] frame) {
+            if (frame.length > 2 && frame[2] == TYPE_DATA && ++mmDataFrames == dropDataFrame)
+                return null;
+            if (frame.length > 2 && dropControl && (frame[2] == TYPE_ACK || frame[2] == TYPE_NAK))
+                return null;
+
+            int p = mmRandom.nextInt(100);
+            if (p < mmLossPercent)
+                return null;
+            if (p < mmLossPercent + mmCorruptPercent)
+                frame[mmRandom.nextInt(frame.length)] ^= (byte) (1 << mmRandom.nextInt(8));
+            return frame;
+        }
+
+        synchronized int split(int remaining) {
+            return Math.min(remaining, 1 + mmRandom.nextInt(700));
+        }
+
+        synchronized int dataFrames() {
+            return mmDataFrames;
+        }
+    }
+
+    /**
+     * One direction of an in-memory connection. Frames are delivered to the peer by a reader
+     * thread in arbitrarily sized pieces
+     */
+    private static class Link extends OutputStream {
+        private final BlockingQueue<byte[]> mmQueue;
+        private final Lossy mmLossy;
+        private final Thread mmReader;
+        private volatile boolean mmClosed = false;
+
+        Link(final Endpoint peer, Lossy lossy, int capacity) {
+            mmQueue = new ArrayBlockingQueue<byte[]>(capacity);
+            mmLossy = lossy;
+            mmReader = new Thread() {
+                public void run() {
+                    try {
+                        while (true) {
+                            byte[] frame = mmQueue.take();
+                            int offset = 0;
+                            while (offset < frame.length) {
+                                int count = mmLossy.split(frame.length - offset);
+                                peer.transfer.receive(Arrays.copyOfRange(frame, offset, offset + count), count);
+                                offset += count;
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        // closed
+                    }
+                }
+            };
+            mmReader.start();
+        }
+
+        @Override
+        public void write(int b) throws java.io.IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws java.io.IOException {
+            if (mmClosed)
+                throw new java.io.IOException("Link closed");
+            byte[] frame = mmLossy.apply(Arrays.copyOfRange(buffer, offset, offset + length));
+            if (frame == null)
+                return;
+            try {
+                mmQueue.put(frame);
+            } catch (InterruptedException e) {
+                throw new java.io.IOException("Interrupted");
+            }
+        }
+
+        @Override
+        public void close() {
+            mmClosed = true;
+            mmReader.interrupt();
+        }
+    }
+
+    /**
+     * ReliableTransfer together with everything it has delivered
+     */
+    private static class Endpoint implements ReliableTransfer.Listener {
+        final ReliableTransfer transfer = new ReliableTransfer(this);
+        private final ByteArrayOutputStream mmReceived = new ByteArrayOutputStream();
+        private final Object mmWritableLock = new Object();
+        private boolean mmWritable = false;
+        private Link mmLink = null;
+        int capacity = 1024;
+
+        @Override
+        public synchronized void onData(byte[] data, int length) {
+            mmReceived.write(data, 0, length);
+            notifyAll();
+        }
+
+        @Override
+        public void onWritable() {
+            synchronized (mmWritableLock) {
+                mmWritable = true;
+                mmWritableLock.notifyAll();
+            }
+        }
+
+        void attach(Link link) {
+            mmLink = link;
+            transfer.attach(link);
+        }
+
+        void disconnect() {
+            if (mmLink != null) {
+                transfer.detach(mmLink);
+                mmLink.close();
+                mmLink = null;
+            }
+        }
+
+        /**
+         * Queue all data, waiting for the writable notification whenever the window is full
+         */
+        void sendAll(byte[] data, int offset, int length) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + DELIVERY_TIMEOUT;
+            int end = offset + length;
+            while (true) {
+                offset += transfer.send(data, offset, end - offset);
+                if (offset == end)
+                    return;
+                synchronized (mmWritableLock) {
+                    while (!mmWritable) {
+                        long remaining = deadline - System.currentTimeMillis();
+                        assertTrue("Send window never opened", remaining > 0);
+                        mmWritableLock.wait(remaining);
+                    }
+                    mmWritable = false;
+                }
+            }
+        }
+
+        void awaitAcknowledged() throws InterruptedException {
+            long deadline = System.currentTimeMillis() + DELIVERY_TIMEOUT;
+            while (!transfer.isAcknowledged()) {
+                assertTrue("Data not acknowledged", System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+        }
+
+        synchronized byte[] received() {
+            return mmReceived.toByteArray();
+        }
+
+        synchronized void awaitReceived(int length) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + DELIVERY_TIMEOUT;
+            while (mmReceived.size() < length) {
+                long remaining = deadline - System.currentTimeMillis();
+                assertTrue("Received only " + mmReceived.size() + " of " + length + " bytes",
+                        remaining > 0);
+                wait(remaining);
+            }
+            assertEquals(length, mmReceived.size());
+        }
+    }
+}
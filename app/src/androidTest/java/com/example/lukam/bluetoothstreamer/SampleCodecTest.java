@@ -0,0 +1,157 @@
+package com.example.lukam.bluetoothstreamer;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Round trip tests for SampleCodec
+ */
+public class SampleCodecTest extends TestCase {
+
+    public void testSteadyTimestamps() {
+        int count = 1000;
+        long[] timestamps = new long[count];
+        int[] values = new int[count];
+        for (int i = 0; i < count; i++) {
+            timestamps[i] = 1700000000000L + i * 10;
+            values[i] = 500 + (i % 7);
+        }
+
+        SampleCodec encoder = new SampleCodec(count);
+        int length = encoder.encode(timestamps, values, count);
+
+        // Steady rate and small value changes take one byte each
+        assertTrue("Frame too large: " + length, length < 3 * count);
+        assertRoundTrip(encoder.getBuffer(), length, timestamps, values, count, length);
+    }
+
+    public void testRandomTimestampsAndSplitChunks() {
+        Random random = new Random(1);
+        int count = 500;
+        long[] timestamps = new long[count];
+        int[] values = new int[count];
+        long t = random.nextLong();
+        for (int i = 0; i < count; i++) {
+            t += random.nextInt(100000) - 50000;
+            timestamps[i] = t;
+            values[i] = random.nextInt();
+        }
+
+        SampleCodec encoder = new SampleCodec(count);
+        int length = encoder.encode(timestamps, values, count);
+
+        assertRoundTrip(encoder.getBuffer(), length, timestamps, values, count, 1);
+        assertRoundTrip(encoder.getBuffer(), length, timestamps, values, count, 7);
+        assertRoundTrip(encoder.getBuffer(), length, timestamps, values, count, 1024);
+    }
+
+    public void testValueAndTimestampOverflow() {
+        long[] timestamps = { Long.MAX_VALUE, Long.MIN_VALUE, 0, Long.MAX_VALUE, -1 };
+        int[] values = { Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE, 0, Integer.MIN_VALUE };
+
+        SampleCodec encoder = new SampleCodec(timestamps.length);
+        int length = encoder.encode(timestamps, values, timestamps.length);
+
+        assertRoundTrip(encoder.getBuffer(), length, timestamps, values, timestamps.length, 3);
+    }
+
+    public void testBatchLargerThanInitialBuffer() {
+        int count = 10000;
+        long[] timestamps = new long[count];
+        int[] values = new int[count];
+        for (int i = 0; i < count; i++) {
+            timestamps[i] = i * 3L;
+            values[i] = i * i;
+        }
+
+        // Both the encoding and the decoding buffer have to grow
+        SampleCodec encoder = new SampleCodec(1);
+        int length = encoder.encode(timestamps, values, count);
+
+        SampleCodec decoder = new SampleCodec(1);
+        long[] decodedTimestamps = new long[count];
+        int[] decodedValues = new int[count];
+        decoder.append(encoder.getBuffer(), length);
+        assertEquals(count, decoder.decode(decodedTimestamps, decodedValues));
+        assertTrue(Arrays.equals(timestamps, decodedTimestamps));
+        assertTrue(Arrays.equals(values, decodedValues));
+    }
+
+    public void testConsecutiveFrames() {
+        long[] timestamps = { 10, 20, 30 };
+        int[] values = { 1, 2, 3 };
+        SampleCodec encoder = new SampleCodec(3);
+        SampleCodec decoder = new SampleCodec(3);
+
+        int length = encoder.encode(timestamps, values, 3);
+        decoder.append(encoder.getBuffer(), length);
+        decoder.append(encoder.getBuffer(), length);
+
+        long[] decodedTimestamps = new long[3];
+        int[] decodedValues = new int[3];
+        assertEquals(3, decoder.decode(decodedTimestamps, decodedValues));
+        assertEquals(3, decoder.decode(decodedTimestamps, decodedValues));
+        assertEquals(-1, decoder.decode(decodedTimestamps, decodedValues));
+    }
+
+    public void testCorruptCountIsRejected() {
+        // Payload of 5 bytes holding the count 0xFFFFFFFF
+        byte[] frame = { 0, 0, 0, 5, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x0f };
+        SampleCodec decoder = new SampleCodec(1);
+        decoder.append(frame, frame.length);
+
+        try {
+            decoder.decode(new long[1], new int[1]);
+            fail("Corrupt count accepted");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        decoder.reset();
+        assertEquals(-1, decoder.decode(new long[1], new int[1]));
+    }
+
+    public void testCorruptLengthIsRejected() {
+        // Length prefix far beyond any valid batch, must not wait for the rest of the frame
+        byte[] frame = { 0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0 };
+        SampleCodec decoder = new SampleCodec(1);
+        decoder.append(frame, frame.length);
+
+        try {
+            decoder.decode(new long[1], new int[1]);
+            fail("Corrupt length accepted");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    public void testBatchSizeLimit() {
+        int count = SampleCodec.MAX_BATCH_SIZE + 1;
+        try {
+            new SampleCodec(1).encode(new long[count], new int[count], count);
+            fail("Oversized batch accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private static void assertRoundTrip(byte[] frame, int length, long[] timestamps, int[] values,
+                                        int count, int chunkSize) {
+        SampleCodec decoder = new SampleCodec(1);
+        long[] decodedTimestamps = new long[count];
+        int[] decodedValues = new int[count];
+
+        for (int offset = 0; offset < length; offset += chunkSize) {
+            assertEquals(-1, decoder.decode(decodedTimestamps, decodedValues));
+            byte[] chunk = Arrays.copyOfRange(frame, offset, Math.min(length, offset + chunkSize));
+            decoder.append(chunk, chunk.length);
+        }
+
+        assertEquals(count, decoder.decode(decodedTimestamps, decodedValues));
+        assertTrue(Arrays.equals(timestamps, decodedTimestamps));
+        assertTrue(Arrays.equals(values, decodedValues));
+        assertEquals(-1, decoder.decode(decodedTimestamps, decodedValues));
+    }
+}
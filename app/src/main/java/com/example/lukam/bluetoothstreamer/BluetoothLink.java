@@ -10,6 +10,7 @@ import android.util.Log;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.UUID;
 import android.os.Handler;
 
@@ -31,6 +32,12 @@ import android.os.Handler;
  *      1. UNDEFINED        - mode not defined
  *      2. SOCKET_SERVER    - upon connection loss the link is put in LISTENING state
  *      3. CLIENT           - upon connection loss the link is put in CONNECTING state
+ *
+ * In reliable mode data is sent in checksummed, numbered chunks (see ReliableTransfer). Missing
+ * or corrupt chunks are resent selectively, also after the link has been reconnected. write()
+ * queues only what fits into the retransmit window and returns the number of bytes queued, a
+ * WRITE message tells the user when there is room for the rest. Queued data is only dropped
+ * when either endpoint calls stop().
  */
 public class BluetoothLink {
 
@@ -53,6 +60,7 @@ public class BluetoothLink {
     private BLState mState;
     private BluetoothDevice mLastConnectedDevice = null;
     private BLMode mMode;
+    private ReliableTransfer mReliable = null;
 
     // Link modes
     public static enum BLMode { UNDEFINED, SOCKET_SERVER, CLIENT }
@@ -105,6 +113,41 @@ public class BluetoothLink {
         return mState;
     }
 
+    /**
+     * Enable or disable reliable transfer mode. Both endpoints must use the same mode
+     * @param enabled   True to send data in checksummed chunks with selective retransmit
+     */
+    public synchronized void setReliable(boolean enabled) {
+        if (DEBUG) Log.d(TAG, "setReliable() " + enabled);
+
+        if (mReliable != null) {
+            mReliable.reset();
+            mReliable = null;
+        }
+
+        if (enabled) {
+            mReliable = new ReliableTransfer(new ReliableTransfer.Listener() {
+                @Override
+                public void onData(byte[] data, int length) {
+                    mHandler.obtainMessage(BLMessage.READ.ordinal(), length, -1, data).sendToTarget();
+                }
+
+                @Override
+                public void onWritable() {
+                    mHandler.obtainMessage(BLMessage.WRITE.ordinal()).sendToTarget();
+                }
+            });
+        }
+
+        // Restart the communication so both directions use the new mode
+        if (mCommunicationThread != null) {
+            if (mMode == BLMode.SOCKET_SERVER)
+                accept();
+            else if (mLastConnectedDevice != null && mMode == BLMode.CLIENT)
+                connect(mLastConnectedDevice);
+        }
+    }
+
     /**
      * Start the socket server
      */
@@ -197,7 +240,7 @@ public class BluetoothLink {
         }
 
         // Start the communication thread
-        mCommunicationThread = new CommunicationThread(socket);
+        mCommunicationThread = new CommunicationThread(socket, mReliable);
         mCommunicationThread.start();
 
         setState(BLState.CONNECTED);
@@ -228,23 +271,50 @@ public class BluetoothLink {
             mCommunicationThread = null;
         }
 
+        // Pending reliable data is dropped on both endpoints, the next session starts from scratch
+        if (mReliable != null)
+            mReliable.reset();
+
         setState(BLState.NONE);
     }
 
     /**
      * Write to the ConnectedThread in an unsynchronized manner
      * @param   out Bytes to write
+     * @return  Number of bytes written or queued
      */
-    public void write(byte[] out) {
+    public int write(byte[] out) {
+        return write(out, 0, out.length);
+    }
+
+    /**
+     * Write part of a buffer to the ConnectedThread in an unsynchronized manner. Allows reusable
+     * buffers, e.g. SampleCodec frames, to be sent without copying.
+     * In reliable mode the call never blocks. Data is queued while the link is listening or
+     * reconnecting, but only as much as fits into the retransmit window. The rest has to be
+     * written again after the WRITE message, otherwise the stream has a gap
+     * @param   out     Bytes to write
+     * @param   offset  Start offset in out
+     * @param   length  Number of bytes to write
+     * @return  Number of bytes written or queued, 0 if the link is not running
+     */
+    public int write(byte[] out, int offset, int length) {
         // Create temporary object
         CommunicationThread r;
+        ReliableTransfer reliable;
         synchronized (this) {
-            if (mState != BLState.CONNECTED)
-                return;
+            reliable = mReliable;
+            if (reliable == null && mState != BLState.CONNECTED)
+                return 0;
+            if (reliable != null && (mMode == BLMode.UNDEFINED || mState == BLState.NONE))
+                return 0;
             r = mCommunicationThread;
         }
         // Perform the write unsynchronized
-        r.write(out);
+        if (reliable != null)
+            return reliable.send(out, offset, length);
+        r.write(out, offset, length);
+        return length;
     }
 
     /**
@@ -406,11 +476,13 @@ public class BluetoothLink {
         private final BluetoothSocket mmSocket;
         private final InputStream mmInStream;
         private final OutputStream mmOutStream;
+        private final ReliableTransfer mmReliable;
 
         // Constructor
-        private CommunicationThread(BluetoothSocket socket) {
+        private CommunicationThread(BluetoothSocket socket, ReliableTransfer reliable) {
             Log.d(TAG, "create CommunicationThread");
             mmSocket = socket;
+            mmReliable = reliable;
             InputStream tmpIn = null;
             OutputStream tmpOut = null;
 
@@ -431,18 +503,34 @@ public class BluetoothLink {
             byte[] buffer = new byte[1024];
             int bytes;
 
+            // Resend whatever the peer has not acknowledged before the connection was lost
+            if (mmReliable != null)
+                mmReliable.attach(mmOutStream);
+
             // Prioritize input stream reading
             while (true) {
                 try {
                     // Read from the InputStream - blocking call
                     bytes = mmInStream.read(buffer);
 
-                    // Pass the obtained data to a service user via provided handler
-                    mHandler.obtainMessage(BLMessage.READ.ordinal(), bytes, -1, buffer).sendToTarget();
+                    // Pass the obtained data to a service user via provided handler, in reliable
+                    // mode only verified chunks are passed on
+                    if (mmReliable != null) {
+                        if (bytes > 0)
+                            mmReliable.receive(buffer, bytes);
+                    } else if (bytes > 0) {
+                        // The buffer is reused by the next read() before the handler processes
+                        // the message, so every message gets its own copy
+                        byte[] data = Arrays.copyOf(buffer, bytes);
+                        mHandler.obtainMessage(BLMessage.READ.ordinal(), bytes, -1, data).sendToTarget();
+                    }
 
                 } catch (IOException e) {
                     Log.e(TAG, "connection lost", e);
 
+                    if (mmReliable != null)
+                        mmReliable.detach(mmOutStream);
+
                     // Restart the service
                     // must be synchronized block since mIsServerSocket is set in main thread
                     synchronized (BluetoothLink.this) {
@@ -458,12 +546,14 @@ public class BluetoothLink {
         }
 
         /**
-        * Write to the connected OutputStream
-        * @param buffer    Bytes to write
-        */
-        public void write(byte[] buffer) {
+         * Write part of a buffer to the connected OutputStream
+         * @param buffer    Bytes to write
+         * @param offset    Start offset in buffer
+         * @param length    Number of bytes to write
+         */
+        public void write(byte[] buffer, int offset, int length) {
             try {
-                mmOutStream.write(buffer);
+                mmOutStream.write(buffer, offset, length);
             } catch (IOException e) {
                 Log.e(TAG, "Exception during write", e);
             }
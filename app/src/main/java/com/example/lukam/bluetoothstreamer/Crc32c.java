@@ -0,0 +1,68 @@
+package com.example.lukam.bluetoothstreamer;
+
+/**
+ * CRC-32C (Castagnoli) checksum, used to verify BluetoothLink chunks in reliable mode
+ *
+ * The platform only provides CRC-32C from Java 9 on, so a table driven slicing-by-8
+ * implementation is used. It processes eight bytes per step without any allocation.
+ */
+public final class Crc32c {
+
+    // Reflected Castagnoli polynomial
+    private static final int POLY = 0x82F63B78;
+
+    // Eight lookup tables of 256 entries each
+    private static final int[] TABLE = new int[8 * 256];
+
+    static {
+        for (int n = 0; n < 256; n++) {
+            int crc = n;
+            for (int k = 0; k < 8; k++)
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLY : crc >>> 1;
+            TABLE[n] = crc;
+        }
+        for (int n = 0; n < 256; n++) {
+            int crc = TABLE[n];
+            for (int t = 1; t < 8; t++) {
+                crc = TABLE[crc & 0xff] ^ (crc >>> 8);
+                TABLE[t * 256 + n] = crc;
+            }
+        }
+    }
+
+    private Crc32c() {
+    }
+
+    /**
+     * Compute CRC-32C of a buffer region
+     * @param buffer    Input bytes
+     * @param offset    Start offset in buffer
+     * @param length    Number of bytes to process
+     * @return          The checksum
+     */
+    public static int compute(byte[] buffer, int offset, int length) {
+        int crc = 0xFFFFFFFF;
+        int end = offset + length;
+
+        while (end - offset >= 8) {
+            int lo = crc ^ ((buffer[offset] & 0xff)
+                    | (buffer[offset + 1] & 0xff) << 8
+                    | (buffer[offset + 2] & 0xff) << 16
+                    | (buffer[offset + 3] & 0xff) << 24);
+            crc = TABLE[7 * 256 + (lo & 0xff)]
+                    ^ TABLE[6 * 256 + ((lo >>> 8) & 0xff)]
+                    ^ TABLE[5 * 256 + ((lo >>> 16) & 0xff)]
+                    ^ TABLE[4 * 256 + (lo >>> 24)]
+                    ^ TABLE[3 * 256 + (buffer[offset + 4] & 0xff)]
+                    ^ TABLE[2 * 256 + (buffer[offset + 5] & 0xff)]
+                    ^ TABLE[256 + (buffer[offset + 6] & 0xff)]
+                    ^ TABLE[buffer[offset + 7] & 0xff];
+            offset += 8;
+        }
+
+        while (offset < end)
+            crc = TABLE[(crc ^ buffer[offset++]) & 0xff] ^ (crc >>> 8);
+
+        return ~crc;
+    }
+}
@@ -0,0 +1,697 @@
+package com.example.lukam.bluetoothstreamer;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * This class implements the BluetoothLink reliable transfer mode
+ *
+ * Outgoing data is split into chunks carrying a sequence number and a CRC-32C checksum.
+ * Frame layout:
+ *      1. magic            - 2 bytes, used to resynchronize after corrupt data
+ *      2. type             - 1 byte, DATA, ACK, NAK or SYN
+ *      3. session          - 4 bytes, big endian, session id of the sending endpoint
+ *      4. sequence number  - 4 bytes, big endian
+ *      5. payload length   - 2 bytes, big endian
+ *      6. payload          - DATA: up to CHUNK_SIZE bytes of data
+ *                            ACK:  peer session being answered, bitmap of chunks held after
+ *                                  the acknowledged one
+ *                            NAK:  peer session being answered
+ *                            SYN:  peer session the SYN is meant for, 0 if not known yet
+ *      7. CRC-32C          - 4 bytes, computed over everything after the magic
+ *
+ * Every endpoint picks a random session id, and a new one on reset(). A SYN frame announces the
+ * session id and the first unacknowledged sequence number. SYN is sent on attach() and reset(),
+ * and again whenever the peer answers for a session which is not ours. A receiver restarts its
+ * receive window when the peer session changes. If it already knew an older session of that
+ * peer, the peer has been reset or restarted, so the unacknowledged chunks queued for the old
+ * session are dropped as well and both directions start from scratch. Data is never dropped
+ * otherwise, and never delivered twice.
+ *
+ * The sender keeps unacknowledged chunks in a bounded window. send() queues as much data as
+ * fits and never blocks, the listener is told when the window has room again. The receiver
+ * acknowledges in-order chunks cumulatively, buffers out-of-order chunks and asks for each
+ * missing chunk with a NAK, so only missing or corrupt chunks are sent again. A NAK is repeated
+ * after RETRANSMIT_TIMEOUT if the chunk is still missing. After a reconnect the sender waits
+ * for the answer to its SYN, which lists the chunks the receiver already holds, and resends
+ * only the others.
+ *
+ * All frames are written by a WriterThread, one per connection. The reader thread and the
+ * senders only update the window state and queue control frames, so neither ever blocks on
+ * the socket. The writer thread also resends the oldest chunk when no acknowledgement arrives
+ * within RETRANSMIT_TIMEOUT, which recovers from lost tail chunks and lost ACK or NAK frames.
+ */
+class ReliableTransfer {
+
+    // Debugging
+    private static final String TAG = "ReliableTransfer";
+    private static final boolean DEBUG = true;
+
+    // Frame format
+    private static final byte MAGIC_0 = (byte) 0xB7;
+    private static final byte MAGIC_1 = (byte) 0x5A;
+    private static final byte TYPE_DATA = 1;
+    private static final byte TYPE_ACK = 2;
+    private static final byte TYPE_NAK = 3;
+    private static final byte TYPE_SYN = 4;
+    private static final int HEADER_SIZE = 13;
+    private static final int CRC_SIZE = 4;
+    private static final int SESSION_SIZE = 4;
+    private static final int ACK_PAYLOAD_SIZE = SESSION_SIZE + 4;
+
+    // Maximum payload of a single chunk
+    public static final int CHUNK_SIZE = 1024;
+
+    // Number of unacknowledged chunks, must be a power of two
+    private static final int WINDOW_SIZE = 32;
+
+    // Time without acknowledgement before a chunk or NAK is sent again, in ms
+    private static final long RETRANSMIT_TIMEOUT = 1000;
+
+    private static final int MAX_FRAME_SIZE = HEADER_SIZE + CHUNK_SIZE + CRC_SIZE;
+
+    /**
+     * Receiver of in-order, verified payload data
+     */
+    interface Listener {
+        void onData(byte[] data, int length);
+
+        // Send window has room again after send() queued only part of the data
+        void onWritable();
+    }
+
+    // Members
+    private final Listener mListener;
+    private final Random mRandom = new Random();
+    private WriterThread mWriter = null;
+    private int mSession;
+    private int mPeerSession = 0;
+    private long mLastSyncTime = 0;
+
+    // Send window - frames [mTxBase, mTxNext) are waiting for acknowledgement,
+    // frames [mTxSent, mTxNext) have not been written yet
+    private final byte[][] mTxFrames = new byte[WINDOW_SIZE][MAX_FRAME_SIZE];
+    private final int[] mTxFrameLength = new int[WINDOW_SIZE];
+    private final boolean[] mTxResendPending = new boolean[WINDOW_SIZE];
+    private int mTxBase = 0;
+    private int mTxSent = 0;
+    private int mTxNext = 0;
+    private long mTxProgressTime = 0;
+    private boolean mTxWaitingForSync = false;
+    private boolean mTxFull = false;
+
+    // Receive window - chunks after mRxExpected which arrived out of order
+    private final byte[][] mRxChunks = new byte[WINDOW_SIZE][CHUNK_SIZE];
+    private final int[] mRxChunkLength = new int[WINDOW_SIZE];
+    private final boolean[] mRxNakPending = new boolean[WINDOW_SIZE];
+    private final long[] mRxNakTime = new long[WINDOW_SIZE];
+    private int mRxExpected = 0;
+
+    // Control frames waiting for the writer thread
+    private boolean mSynPending = false;
+    private boolean mAckPending = false;
+
+    // Incoming bytes not yet parsed into frames
+    private final byte[] mRxBuffer = new byte[2 * MAX_FRAME_SIZE];
+    private int mRxLength = 0;
+
+    // Statistics
+    private int mCrcErrors = 0;
+    private int mRetransmits = 0;
+
+    /**
+     * Constructor. Prepares new ReliableTransfer
+     * @param listener  Listener receiving verified data in order
+     */
+    ReliableTransfer(Listener listener) {
+        mListener = listener;
+        mSession = newSession();
+        clearReceiveWindow();
+    }
+
+    /**
+     * Attach to the output stream of a new connection and announce the session. Chunks the
+     * peer did not receive are resent once it has answered
+     * @param out   Connected OutputStream
+     */
+    synchronized void attach(OutputStream out) {
+        if (DEBUG) Log.d(TAG, "attach(), resending " + (mTxNext - mTxBase) + " chunks");
+
+        if (mWriter != null)
+            mWriter.cancel();
+        mWriter = new WriterThread(out);
+        mWriter.start();
+
+        mRxLength = 0;
+        synchronize();
+    }
+
+    /**
+     * Detach from a lost connection. Unacknowledged chunks are kept for the next attach()
+     * @param out   OutputStream of the lost connection, ignored if a newer one is attached
+     */
+    synchronized void detach(OutputStream out) {
+        if (DEBUG) Log.d(TAG, "detach(), " + mCrcErrors + " CRC errors, " + mRetransmits + " retransmits");
+        if (mWriter != null && mWriter.mmOutStream == out) {
+            mWriter.cancel();
+            mWriter = null;
+            mRxLength = 0;
+        }
+    }
+
+    /**
+     * Drop all pending data and start a new session. The peer drops the data it has queued for
+     * us as well once it receives our SYN
+     */
+    synchronized void reset() {
+        mSession = newSession();
+        mPeerSession = 0;
+        mTxBase = 0;
+        mTxSent = 0;
+        mTxNext = 0;
+        mRxExpected = 0;
+        mRxLength = 0;
+        mAckPending = false;
+        mTxWaitingForSync = false;
+        mTxFull = false;
+        mCrcErrors = 0;
+        mRetransmits = 0;
+        clearReceiveWindow();
+        clearResend();
+
+        // Tell a still connected peer about the new session
+        if (mWriter != null)
+            synchronize();
+    }
+
+    /**
+     * Queue data for reliable transfer. Never blocks - if the send window is full only part of
+     * the data is queued, and the listener is told once there is room for the rest
+     * @param data      Bytes to send
+     * @param offset    Start offset in data
+     * @param length    Number of bytes to send
+     * @return          Number of bytes queued
+     */
+    synchronized int send(byte[] data, int offset, int length) {
+        int queued = 0;
+
+        while (queued < length) {
+            if (mTxNext - mTxBase >= WINDOW_SIZE) {
+                mTxFull = true;
+                break;
+            }
+
+            int chunk = Math.min(CHUNK_SIZE, length - queued);
+            int slot = mTxNext & (WINDOW_SIZE - 1);
+            System.arraycopy(data, offset + queued, mTxFrames[slot], HEADER_SIZE, chunk);
+            mTxFrameLength[slot] = buildFrame(mTxFrames[slot], TYPE_DATA, mSession, mTxNext, chunk);
+            mTxResendPending[slot] = false;
+            mTxNext++;
+            queued += chunk;
+        }
+
+        // Wake up the writer thread
+        if (queued > 0)
+            notifyAll();
+        return queued;
+    }
+
+    /**
+     * Return true if the peer has acknowledged all queued data
+     */
+    synchronized boolean isAcknowledged() {
+        return mTxBase == mTxNext;
+    }
+
+    /**
+     * Process bytes read from the connection. Never blocks on the connection
+     * @param data      Received bytes
+     * @param length    Number of valid bytes in data
+     */
+    synchronized void receive(byte[] data, int length) {
+        int offset = 0;
+        while (offset < length) {
+            int count = Math.min(length - offset, mRxBuffer.length - mRxLength);
+            System.arraycopy(data, offset, mRxBuffer, mRxLength, count);
+            mRxLength += count;
+            offset += count;
+            parse();
+        }
+    }
+
+    /**
+     * Extract and handle every complete frame in the receive buffer
+     */
+    private void parse() {
+        int pos = 0;
+
+        while (mRxLength - pos >= 2) {
+            // Look for the start of a frame
+            if (mRxBuffer[pos] != MAGIC_0 || mRxBuffer[pos + 1] != MAGIC_1) {
+                pos++;
+                continue;
+            }
+            if (mRxLength - pos < HEADER_SIZE)
+                break;
+
+            byte type = mRxBuffer[pos + 2];
+            int session = readInt(mRxBuffer, pos + 3);
+            int seq = readInt(mRxBuffer, pos + 7);
+            int payload = ((mRxBuffer[pos + 11] & 0xff) << 8) | (mRxBuffer[pos + 12] & 0xff);
+            if (!isValidHeader(type, payload)) {
+                // Not a valid header, keep searching
+                pos++;
+                continue;
+            }
+
+            int frameLength = HEADER_SIZE + payload + CRC_SIZE;
+            if (mRxLength - pos < frameLength)
+                break;
+
+            int crc = readInt(mRxBuffer, pos + HEADER_SIZE + payload);
+            if (crc != Crc32c.compute(mRxBuffer, pos + 2, HEADER_SIZE - 2 + payload)) {
+                mCrcErrors++;
+                if (DEBUG) Log.d(TAG, "CRC error, waiting for chunk " + mRxExpected);
+                requestMissing(mRxExpected);
+                pos++;
+                continue;
+            }
+
+            switch (type) {
+                case TYPE_DATA:
+                    onDataFrame(session, seq, mRxBuffer, pos + HEADER_SIZE, payload);
+                    break;
+                case TYPE_ACK:
+                    onAck(readInt(mRxBuffer, pos + HEADER_SIZE), seq,
+                            readInt(mRxBuffer, pos + HEADER_SIZE + SESSION_SIZE));
+                    break;
+                case TYPE_NAK:
+                    onNak(readInt(mRxBuffer, pos + HEADER_SIZE), seq);
+                    break;
+                case TYPE_SYN:
+                    onSyn(session, seq, readInt(mRxBuffer, pos + HEADER_SIZE));
+                    break;
+            }
+            pos += frameLength;
+        }
+
+        // Keep the unparsed tail at the start of the buffer
+        System.arraycopy(mRxBuffer, pos, mRxBuffer, 0, mRxLength - pos);
+        mRxLength -= pos;
+    }
+
+    private void onSyn(int session, int base, int target) {
+        if (target != 0 && target != mSession) {
+            // Meant for an older session of ours, the peer has to learn the current one first
+            mSynPending = true;
+            notifyAll();
+            return;
+        }
+
+        if (session != mPeerSession) {
+            if (DEBUG) Log.d(TAG, "New peer session, expecting chunk " + base);
+
+            // The peer started from scratch, so do we - nothing queued for its old session may
+            // reach the new one
+            if (mPeerSession != 0 && mTxBase != mTxNext) {
+                if (DEBUG) Log.d(TAG, "Dropping " + (mTxNext - mTxBase) + " chunks of the old peer session");
+                mTxBase = mTxNext;
+                mTxSent = mTxNext;
+                clearResend();
+                notifyWritable();
+            }
+            boolean known = mPeerSession != 0;
+            mPeerSession = session;
+            mRxExpected = base;
+            clearReceiveWindow();
+
+            // Let the peer learn our base in the new session
+            if (known)
+                synchronize();
+        }
+        mAckPending = true;
+        notifyAll();
+    }
+
+    private void onDataFrame(int session, int seq, byte[] buffer, int offset, int length) {
+        int distance = seq - mRxExpected;
+
+        if (session != mPeerSession || distance < 0) {
+            // Unknown session or duplicate. The acknowledgement tells the sender which session
+            // we are tracking, and makes it resynchronize if that is not its own
+            mAckPending = true;
+            notifyAll();
+            return;
+        }
+        if (distance >= WINDOW_SIZE) {
+            // Sender can not be this far ahead, ask for the first missing chunk
+            requestMissing(mRxExpected);
+            return;
+        }
+
+        if (distance > 0) {
+            // Out of order - keep the chunk and ask for every gap before it
+            int slot = seq & (WINDOW_SIZE - 1);
+            if (mRxChunkLength[slot] < 0) {
+                System.arraycopy(buffer, offset, mRxChunks[slot], 0, length);
+                mRxChunkLength[slot] = length;
+                mRxNakPending[slot] = false;
+            }
+            for (int missing = mRxExpected; missing != seq; missing++) {
+                if (mRxChunkLength[missing & (WINDOW_SIZE - 1)] < 0)
+                    requestMissing(missing);
+            }
+            return;
+        }
+
+        mListener.onData(copy(buffer, offset, length), length);
+        clearReceiveSlot(mRxExpected & (WINDOW_SIZE - 1));
+        mRxExpected++;
+
+        // Deliver chunks which were waiting for this one
+        int slot = mRxExpected & (WINDOW_SIZE - 1);
+        while (mRxChunkLength[slot] >= 0) {
+            mListener.onData(copy(mRxChunks[slot], 0, mRxChunkLength[slot]), mRxChunkLength[slot]);
+            clearReceiveSlot(slot);
+            mRxExpected++;
+            slot = mRxExpected & (WINDOW_SIZE - 1);
+        }
+
+        mAckPending = true;
+        notifyAll();
+    }
+
+    private void onAck(int session, int seq, int held) {
+        if (session != mSession) {
+            resynchronize();
+            return;
+        }
+
+        // Cumulative - everything up to and including seq has been received
+        if (seq - mTxBase >= 0 && seq - mTxNext < 0) {
+            mTxBase = seq + 1;
+            if (mTxSent - mTxBase < 0)
+                mTxSent = mTxBase;
+            mTxProgressTime = System.currentTimeMillis();
+            notifyWritable();
+            notifyAll();
+        }
+
+        if (mTxWaitingForSync) {
+            // First answer after SYN - resend only what the peer does not hold
+            mTxWaitingForSync = false;
+            mTxProgressTime = System.currentTimeMillis();
+            for (int i = mTxBase; i != mTxSent; i++) {
+                int bit = i - (seq + 1);
+                if (bit < 0 || bit >= WINDOW_SIZE || (held & (1 << bit)) == 0)
+                    mTxResendPending[i & (WINDOW_SIZE - 1)] = true;
+            }
+            notifyAll();
+        }
+    }
+
+    private void onNak(int session, int seq) {
+        if (session != mSession) {
+            resynchronize();
+            return;
+        }
+
+        if (seq - mTxBase >= 0 && seq - mTxSent < 0) {
+            mTxResendPending[seq & (WINDOW_SIZE - 1)] = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Peer answered for another session, it has been reset or restarted since our last SYN
+     */
+    private void resynchronize() {
+        // Every frame in flight gets the same answer, so synchronize once per timeout
+        if (System.currentTimeMillis() - mLastSyncTime >= RETRANSMIT_TIMEOUT) {
+            if (DEBUG) Log.d(TAG, "Peer lost our session, synchronizing");
+            synchronize();
+        }
+    }
+
+    /**
+     * Queue a SYN and hold back all chunks until the peer answers it
+     */
+    private void synchronize() {
+        long now = System.currentTimeMillis();
+        mLastSyncTime = now;
+        mSynPending = true;
+        mTxWaitingForSync = true;
+        clearResend();
+        notifyAll();
+    }
+
+    private void notifyWritable() {
+        if (mTxFull && mTxNext - mTxBase < WINDOW_SIZE) {
+            mTxFull = false;
+            mListener.onWritable();
+        }
+    }
+
+    private void requestMissing(int seq) {
+        int slot = seq & (WINDOW_SIZE - 1);
+        long now = System.currentTimeMillis();
+
+        // Repeat the NAK if the chunk is still missing after a timeout
+        if (now - mRxNakTime[slot] >= RETRANSMIT_TIMEOUT) {
+            mRxNakTime[slot] = now;
+            mRxNakPending[slot] = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Build the next frame the writer thread should send. Must be called with the lock held
+     * @param frame     Buffer receiving the frame
+     * @return          Frame length, or 0 if there is nothing to send
+     */
+    private int nextFrame(byte[] frame) {
+        long now = System.currentTimeMillis();
+
+        // SYN not answered, it or the answer was lost
+        if (mTxWaitingForSync && now - mLastSyncTime >= RETRANSMIT_TIMEOUT) {
+            mLastSyncTime = now;
+            mSynPending = true;
+        }
+
+        if (mSynPending) {
+            mSynPending = false;
+            writeInt(frame, HEADER_SIZE, mPeerSession);
+            return buildFrame(frame, TYPE_SYN, mSession, mTxBase, SESSION_SIZE);
+        }
+
+        if (mAckPending) {
+            mAckPending = false;
+            writeInt(frame, HEADER_SIZE, mPeerSession);
+            writeInt(frame, HEADER_SIZE + SESSION_SIZE, heldChunks());
+            return buildFrame(frame, TYPE_ACK, mSession, mRxExpected - 1, ACK_PAYLOAD_SIZE);
+        }
+
+        for (int i = 0; i < WINDOW_SIZE; i++) {
+            int seq = mRxExpected + i;
+            int slot = seq & (WINDOW_SIZE - 1);
+            if (mRxNakPending[slot]) {
+                mRxNakPending[slot] = false;
+                writeInt(frame, HEADER_SIZE, mPeerSession);
+                return buildFrame(frame, TYPE_NAK, mSession, seq, SESSION_SIZE);
+            }
+        }
+
+        if (mTxWaitingForSync)
+            return 0;
+
+        // Nothing acknowledged for too long, the oldest chunk or its answer was lost
+        if (mTxBase != mTxSent && now - mTxProgressTime >= RETRANSMIT_TIMEOUT) {
+            if (DEBUG) Log.d(TAG, "Retransmit timeout, resending chunk " + mTxBase);
+            mTxResendPending[mTxBase & (WINDOW_SIZE - 1)] = true;
+            mTxProgressTime = now;
+        }
+
+        for (int seq = mTxBase; seq != mTxSent; seq++) {
+            int slot = seq & (WINDOW_SIZE - 1);
+            if (mTxResendPending[slot]) {
+                mTxResendPending[slot] = false;
+                mRetransmits++;
+                return copyFrame(slot, frame);
+            }
+        }
+
+        if (mTxSent != mTxNext) {
+            if (mTxSent == mTxBase)
+                mTxProgressTime = now;
+            return copyFrame(mTxSent++ & (WINDOW_SIZE - 1), frame);
+        }
+
+        return 0;
+    }
+
+    /**
+     * Time the writer thread may sleep before the retransmit timer expires, 0 for no limit.
+     * Must be called with the lock held
+     */
+    private long nextTimeout() {
+        if (mTxWaitingForSync)
+            return Math.max(1, mLastSyncTime + RETRANSMIT_TIMEOUT - System.currentTimeMillis());
+        if (mTxBase == mTxSent)
+            return 0;
+        return Math.max(1, mTxProgressTime + RETRANSMIT_TIMEOUT - System.currentTimeMillis());
+    }
+
+    private int copyFrame(int slot, byte[] frame) {
+        // Copied under the lock, the slot may be reused once the chunk is acknowledged
+        System.arraycopy(mTxFrames[slot], 0, frame, 0, mTxFrameLength[slot]);
+        return mTxFrameLength[slot];
+    }
+
+    /**
+     * Bitmap of out-of-order chunks held, bit i stands for chunk mRxExpected + i
+     */
+    private int heldChunks() {
+        int held = 0;
+        for (int i = 1; i < WINDOW_SIZE; i++) {
+            if (mRxChunkLength[(mRxExpected + i) & (WINDOW_SIZE - 1)] >= 0)
+                held |= 1 << i;
+        }
+        return held;
+    }
+
+    private void clearResend() {
+        for (int i = 0; i < WINDOW_SIZE; i++)
+            mTxResendPending[i] = false;
+    }
+
+    private void clearReceiveWindow() {
+        for (int i = 0; i < WINDOW_SIZE; i++)
+            clearReceiveSlot(i);
+    }
+
+    private void clearReceiveSlot(int slot) {
+        mRxChunkLength[slot] = -1;
+        mRxNakPending[slot] = false;
+        mRxNakTime[slot] = 0;
+    }
+
+    private int newSession() {
+        int session;
+        do {
+            session = mRandom.nextInt();
+        } while (session == 0 || session == mSession);
+        return session;
+    }
+
+    /**
+     * Writer thread - the only thread writing to the connection. Sends queued control frames,
+     * new chunks and retransmissions, and runs the retransmit timer
+     */
+    private class WriterThread extends Thread {
+        private final OutputStream mmOutStream;
+        private final byte[] mmFrame = new byte[MAX_FRAME_SIZE];
+        private boolean mmCancelled = false;
+
+        public WriterThread(OutputStream out) {
+            mmOutStream = out;
+        }
+
+        public void run() {
+            if (DEBUG) Log.d(TAG, "BEGIN mWriterThread");
+            setName("WriterThread");
+
+            while (true) {
+                int length = 0;
+                synchronized (ReliableTransfer.this) {
+                    while (!mmCancelled) {
+                        length = nextFrame(mmFrame);
+                        if (length > 0)
+                            break;
+                        try {
+                            ReliableTransfer.this.wait(nextTimeout());
+                        } catch (InterruptedException e) {
+                            Log.e(TAG, "WriterThread interrupted", e);
+                            mmCancelled = true;
+                        }
+                    }
+                    if (mmCancelled)
+                        break;
+                }
+
+                // Write without holding the lock so a full socket never blocks the reader
+                try {
+                    mmOutStream.write(mmFrame, 0, length);
+                } catch (IOException e) {
+                    // Chunks stay in the window and are resent after reconnect
+                    Log.e(TAG, "Exception during write", e);
+                    synchronized (ReliableTransfer.this) {
+                        if (mWriter == this)
+                            mWriter = null;
+                    }
+                    break;
+                }
+            }
+            if (DEBUG) Log.d(TAG, "END mWriterThread");
+        }
+
+        // Must be called with the lock held
+        public void cancel() {
+            mmCancelled = true;
+            ReliableTransfer.this.notifyAll();
+        }
+    }
+
+    private static boolean isValidHeader(byte type, int payload) {
+        switch (type) {
+            case TYPE_DATA:
+                return payload <= CHUNK_SIZE;
+            case TYPE_ACK:
+                return payload == ACK_PAYLOAD_SIZE;
+            case TYPE_NAK:
+            case TYPE_SYN:
+                return payload == SESSION_SIZE;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Fill in the header and checksum around a payload already placed in the frame
+     * @return  Total frame length
+     */
+    private static int buildFrame(byte[] frame, byte type, int session, int seq, int length) {
+        frame[0] = MAGIC_0;
+        frame[1] = MAGIC_1;
+        frame[2] = type;
+        writeInt(frame, 3, session);
+        writeInt(frame, 7, seq);
+        frame[11] = (byte) (length >>> 8);
+        frame[12] = (byte) length;
+        writeInt(frame, HEADER_SIZE + length, Crc32c.compute(frame, 2, HEADER_SIZE - 2 + length));
+        return HEADER_SIZE + length + CRC_SIZE;
+    }
+
+    private static byte[] copy(byte[] buffer, int offset, int length) {
+        // Handler messages are processed later, so delivered data must not be reused
+        byte[] data = new byte[length];
+        System.arraycopy(buffer, offset, data, 0, length);
+        return data;
+    }
+
+    private static int readInt(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xff) << 24)
+                | ((buffer[offset + 1] & 0xff) << 16)
+                | ((buffer[offset + 2] & 0xff) << 8)
+                | (buffer[offset + 3] & 0xff);
+    }
+
+    private static void writeInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+}
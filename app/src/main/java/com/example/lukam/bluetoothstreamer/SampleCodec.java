@@ -0,0 +1,234 @@
+package com.example.lukam.bluetoothstreamer;
+
+/**
+ * This class encodes and decodes batches of timestamped samples in a compact binary form
+ * suitable for streaming over BluetoothLink
+ *
+ * Batch frame layout:
+ *      1. payload length   - 4 bytes, big endian
+ *      2. sample count     - varint
+ *      3. first sample     - zig-zag varint timestamp, zig-zag varint value
+ *      4. second sample    - zig-zag varint timestamp delta, zig-zag varint value delta
+ *      5. other samples    - zig-zag varint timestamp delta-of-delta, zig-zag varint value delta
+ *
+ * Samples taken at a steady rate have a delta-of-delta of zero, so each timestamp usually takes
+ * a single byte. Slowly changing values take one or two bytes.
+ *
+ * Both encoding and decoding work on primitive arrays and internal buffers which are reused
+ * between batches, so no objects are allocated once the buffers have grown to the batch size.
+ * One codec instance should be used per direction and is not thread safe.
+ */
+public class SampleCodec {
+
+    // Size of the frame length prefix
+    private static final int HEADER_SIZE = 4;
+
+    // Worst case encoded sizes
+    private static final int MAX_VARINT32_SIZE = 5;
+    private static final int MAX_VARINT64_SIZE = 10;
+
+    // Largest batch, keeps frame sizes well inside int range and bounds the decoding buffer
+    public static final int MAX_BATCH_SIZE = 65536;
+    private static final int MAX_PAYLOAD_SIZE =
+            MAX_VARINT32_SIZE + MAX_BATCH_SIZE * (MAX_VARINT64_SIZE + MAX_VARINT64_SIZE);
+
+    // Encoding buffer
+    private byte[] mTxBuffer;
+    private int mTxPos;
+
+    // Decoding buffer, holds received bytes until a whole frame is available
+    private byte[] mRxBuffer;
+    private int mRxLength;
+    private int mRxPos;
+
+    // Position following the last varint read
+    private int mReadPos;
+
+    /**
+     * Constructor. Prepares new SampleCodec
+     * @param batchSize     Expected number of samples per batch, used to size the initial buffers
+     */
+    public SampleCodec(int batchSize) {
+        if (batchSize < 0 || batchSize > MAX_BATCH_SIZE)
+            throw new IllegalArgumentException("Invalid batch size: " + batchSize);
+        mTxBuffer = new byte[maxFrameSize(batchSize)];
+        mRxBuffer = new byte[maxFrameSize(batchSize)];
+    }
+
+    /**
+     * Encode a batch of samples into the internal buffer
+     * @param timestamps    Sample timestamps
+     * @param values        Sample values
+     * @param count         Number of samples to encode, at most MAX_BATCH_SIZE
+     * @return              Length of the encoded frame, available through getBuffer()
+     */
+    public int encode(long[] timestamps, int[] values, int count) {
+        if (count < 0 || count > MAX_BATCH_SIZE || count > timestamps.length || count > values.length)
+            throw new IllegalArgumentException("Invalid sample count: " + count);
+
+        int size = maxFrameSize(count);
+        if (mTxBuffer.length < size)
+            mTxBuffer = new byte[size];
+
+        mTxPos = HEADER_SIZE;
+        writeVarint(count);
+
+        long prevTimestamp = 0;
+        long prevDelta = 0;
+        int prevValue = 0;
+        for (int i = 0; i < count; i++) {
+            long delta = timestamps[i] - prevTimestamp;
+            if (i < 2)
+                writeVarint(zigZag(delta));
+            else
+                writeVarint(zigZag(delta - prevDelta));
+            writeVarint(zigZag(values[i] - prevValue));
+
+            // First delta is measured from zero and must not be used as a reference
+            prevDelta = i == 0 ? 0 : delta;
+            prevTimestamp = timestamps[i];
+            prevValue = values[i];
+        }
+
+        int payload = mTxPos - HEADER_SIZE;
+        mTxBuffer[0] = (byte) (payload >>> 24);
+        mTxBuffer[1] = (byte) (payload >>> 16);
+        mTxBuffer[2] = (byte) (payload >>> 8);
+        mTxBuffer[3] = (byte) payload;
+
+        return mTxPos;
+    }
+
+    /**
+     * Return the buffer holding the last encoded frame. The buffer is overwritten by the next
+     * call to encode()
+     */
+    public byte[] getBuffer() {
+        return mTxBuffer;
+    }
+
+    /**
+     * Append received bytes to the decoding buffer. Data may be split at arbitrary positions,
+     * as delivered by the BluetoothLink READ message. The data is copied, so the caller may
+     * reuse it afterwards
+     * @param data      Received bytes
+     * @param length    Number of valid bytes in data
+     */
+    public void append(byte[] data, int length) {
+        // Drop already decoded frames before growing the buffer
+        if (mRxPos > 0) {
+            System.arraycopy(mRxBuffer, mRxPos, mRxBuffer, 0, mRxLength - mRxPos);
+            mRxLength -= mRxPos;
+            mRxPos = 0;
+        }
+
+        if (mRxBuffer.length < mRxLength + length) {
+            byte[] tmp = new byte[Math.max(mRxBuffer.length * 2, mRxLength + length)];
+            System.arraycopy(mRxBuffer, 0, tmp, 0, mRxLength);
+            mRxBuffer = tmp;
+        }
+
+        System.arraycopy(data, 0, mRxBuffer, mRxLength, length);
+        mRxLength += length;
+    }
+
+    /**
+     * Decode the next complete batch from the decoding buffer. A corrupt frame raises
+     * IllegalStateException and stays in the buffer, so the caller must reset() before
+     * decoding again
+     * @param timestamps    Array to receive sample timestamps
+     * @param values        Array to receive sample values
+     * @return              Number of decoded samples, or -1 if no complete frame is available yet
+     */
+    public int decode(long[] timestamps, int[] values) {
+        if (mRxLength - mRxPos < HEADER_SIZE)
+            return -1;
+
+        int payload = ((mRxBuffer[mRxPos] & 0xff) << 24)
+                | ((mRxBuffer[mRxPos + 1] & 0xff) << 16)
+                | ((mRxBuffer[mRxPos + 2] & 0xff) << 8)
+                | (mRxBuffer[mRxPos + 3] & 0xff);
+        if (payload < 0 || payload > MAX_PAYLOAD_SIZE)
+            throw new IllegalStateException("Corrupt frame length: " + payload);
+        if (mRxLength - mRxPos - HEADER_SIZE < payload)
+            return -1;
+
+        int pos = mRxPos + HEADER_SIZE;
+        int end = pos + payload;
+
+        // Every sample takes at least two bytes
+        long encodedCount = readVarint(pos, end);
+        if (encodedCount < 0 || encodedCount > payload / 2 || encodedCount > MAX_BATCH_SIZE)
+            throw new IllegalStateException("Corrupt sample count: " + encodedCount);
+        int count = (int) encodedCount;
+        pos = mReadPos;
+        // Leave the frame in place so the caller can retry with larger arrays
+        if (count > timestamps.length || count > values.length)
+            throw new IllegalArgumentException("Batch of " + count + " samples does not fit");
+
+        long prevTimestamp = 0;
+        long prevDelta = 0;
+        int prevValue = 0;
+        for (int i = 0; i < count; i++) {
+            long delta = unZigZag(readVarint(pos, end));
+            if (i >= 2)
+                delta += prevDelta;
+            int value = prevValue + (int) unZigZag(readVarint(mReadPos, end));
+            pos = mReadPos;
+
+            timestamps[i] = prevTimestamp + delta;
+            values[i] = value;
+
+            prevDelta = i == 0 ? 0 : delta;
+            prevTimestamp = timestamps[i];
+            prevValue = value;
+        }
+
+        mRxPos = end;
+        return count;
+    }
+
+    /**
+     * Discard any partially received data, e.g. after the link has been reconnected
+     */
+    public void reset() {
+        mRxLength = 0;
+        mRxPos = 0;
+    }
+
+    private long readVarint(int pos, int end) {
+        long result = 0;
+        int shift = 0;
+        while (true) {
+            if (pos >= end || shift >= 64)
+                throw new IllegalStateException("Corrupt varint in sample frame");
+            byte b = mRxBuffer[pos++];
+            result |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                break;
+            shift += 7;
+        }
+        mReadPos = pos;
+        return result;
+    }
+
+    private void writeVarint(long value) {
+        while ((value & ~0x7fL) != 0) {
+            mTxBuffer[mTxPos++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        mTxBuffer[mTxPos++] = (byte) value;
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int maxFrameSize(int count) {
+        return HEADER_SIZE + MAX_VARINT32_SIZE + count * (MAX_VARINT64_SIZE + MAX_VARINT64_SIZE);
+    }
+}